@@ -0,0 +1,416 @@
+package com.mallorcasoftware.user.outbox;
+
+import com.mallorcasoftware.user.model.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of user events stored in fixed size, memory-mapped segment files.
+ * <p>
+ * Every record holds a checksum, its length, the event type, the time it was logged and a
+ * snapshot of the user (id, username, email, reset token, reset request time and locale,
+ * never the password). Offsets are byte positions in the log; a record which does not fit
+ * into the rest of a segment starts the next one. Appends are written to the mapped segment
+ * and forced to disk once {@code syncBatchSize} records are pending or {@link #sync()} is
+ * called. On open the last segment is scanned and cut at the first record with an invalid
+ * checksum, dropping writes torn by a crash.
+ * <p>
+ * The log does not delete anything by itself. {@link #deleteSegments(long, long)} removes
+ * whole segments below a given offset, which the {@link OutboxDispatcher} calls once its
+ * checkpoint has passed them; records before {@link #getStartOffset()} can not be read any
+ * more. A deleted segment is unmapped once no reader holds it anymore and the garbage
+ * collector releases its buffer.
+ */
+public class EventLog implements Closeable {
+    static final int HEADER_SIZE = 8;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int DEFAULT_SYNC_BATCH_SIZE = 256;
+
+    private static final int MIN_SEGMENT_SIZE = 1024;
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int syncBatchSize;
+
+    // Mapped segments by segment number, the base offset of a segment divided by segmentSize
+    private final NavigableMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+
+    private volatile long startOffset;
+
+    private volatile long nextOffset;
+
+    private int unsyncedRecords;
+
+    private boolean closed;
+
+    public EventLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_BATCH_SIZE);
+    }
+
+    public EventLog(Path directory, int segmentSize, int syncBatchSize) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be at least " + MIN_SEGMENT_SIZE);
+        }
+
+        if (syncBatchSize <= 0) {
+            throw new IllegalArgumentException("syncBatchSize must be positive");
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncBatchSize = syncBatchSize;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Appends an event to the log.
+     *
+     * @param type type of the event
+     * @param user user the event belongs to, stored as it is now
+     * @return offset of the appended record
+     * @throws IOException if a new segment can not be created
+     */
+    public synchronized long append(OutboxEventType type, User user) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Event log is closed");
+        }
+
+        byte[] payload = encode(type, new Date(), user);
+        int size = HEADER_SIZE + payload.length;
+
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Event of " + size + " bytes does not fit into a segment");
+        }
+
+        long offset = nextOffset;
+        int position = (int) (offset % segmentSize);
+
+        if (position + size > segmentSize) {
+            offset += segmentSize - position;
+            position = 0;
+        }
+
+        long index = offset / segmentSize;
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null) {
+            if (!segments.isEmpty()) {
+                segments.lastEntry().getValue().force();
+            }
+            segment = mapSegment(offset);
+            segments.put(index, segment);
+        }
+
+        ByteBuffer target = segment.duplicate();
+        target.position(position + HEADER_SIZE);
+        target.put(payload);
+        segment.putInt(position + 4, payload.length);
+        segment.putInt(position, checksum(offset, payload.length, ByteBuffer.wrap(payload)));
+
+        nextOffset = offset + size;
+
+        if (++unsyncedRecords >= syncBatchSize) {
+            sync();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Reads up to maxRecords records starting at the given offset.
+     *
+     * @param fromOffset offset of a record or the end of the log
+     * @param maxRecords maximum number of records to return
+     * @return records in offset order, empty if there is nothing to read
+     * @throws IllegalArgumentException if there is no record at fromOffset, e.g. because its
+     *                                  segment was deleted
+     */
+    public List<OutboxRecord> read(long fromOffset, int maxRecords) {
+        if (fromOffset < startOffset) {
+            throw new IllegalArgumentException("Offset " + fromOffset + " is before the start of the event log " + startOffset);
+        }
+
+        List<OutboxRecord> records = new ArrayList<>();
+        long offset = fromOffset;
+
+        while (records.size() < maxRecords && offset < nextOffset) {
+            int position = (int) (offset % segmentSize);
+            MappedByteBuffer segment = segments.get(offset / segmentSize);
+            if (segment == null) {
+                throw new IllegalArgumentException("Event log segment of offset " + offset + " was deleted");
+            }
+
+            int length = position + HEADER_SIZE <= segmentSize ? segment.getInt(position + 4) : 0;
+
+            // The rest of a segment stays empty when the following record did not fit into it
+            if (length == 0) {
+                offset += segmentSize - position;
+                continue;
+            }
+
+            if (!isValid(segment, offset, position)) {
+                throw new IllegalArgumentException("No event log record at offset " + offset);
+            }
+
+            long next = offset + HEADER_SIZE + length;
+            records.add(decode(offset, next, slice(segment, position + HEADER_SIZE, length)));
+            offset = next;
+        }
+
+        return records;
+    }
+
+    /**
+     * @return offset of the first record which can still be read
+     */
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * @return offset the next appended record will get at the earliest
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Forces all appended records to disk.
+     */
+    public synchronized void sync() {
+        if (unsyncedRecords > 0 && !segments.isEmpty()) {
+            segments.lastEntry().getValue().force();
+            unsyncedRecords = 0;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments whose records all lie before beforeOffset and were all
+     * logged before createdBeforeMillis. The segment currently appended to is never deleted.
+     *
+     * @param beforeOffset        offset no deleted record may reach, e.g. a dispatcher checkpoint
+     * @param createdBeforeMillis time all deleted records must have been logged before
+     * @return number of deleted segments
+     * @throws IOException if a segment file can not be deleted
+     */
+    public synchronized int deleteSegments(long beforeOffset, long createdBeforeMillis) throws IOException {
+        int deleted = 0;
+
+        while (segments.size() > 1) {
+            Map.Entry<Long, MappedByteBuffer> first = segments.firstEntry();
+            long baseOffset = first.getKey() * segmentSize;
+            long nextBaseOffset = baseOffset + segmentSize;
+
+            // Every record of a segment was logged before the first record of the next one
+            List<OutboxRecord> next = nextBaseOffset <= beforeOffset ? read(nextBaseOffset, 1) : List.of();
+            if (next.isEmpty() || next.get(0).getCreatedAt().getTime() >= createdBeforeMillis) {
+                break;
+            }
+
+            startOffset = nextBaseOffset;
+            segments.remove(first.getKey());
+            Files.delete(segmentPath(baseOffset));
+            deleted++;
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            sync();
+            closed = true;
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream
+                    .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        if (files.isEmpty()) {
+            startOffset = 0;
+            nextOffset = 0;
+            return;
+        }
+
+        // Leading segments may have been deleted, the remaining ones have to be contiguous
+        startOffset = parseBaseOffset(files.get(0));
+
+        for (int i = 0; i < files.size(); i++) {
+            long baseOffset = startOffset + (long) i * segmentSize;
+
+            if (!files.get(i).equals(segmentPath(baseOffset))) {
+                throw new IOException("Missing event log segment " + segmentPath(baseOffset));
+            }
+
+            segments.put(baseOffset / segmentSize, mapSegment(baseOffset));
+        }
+
+        // Only the last segment can contain a partially written tail
+        long baseOffset = segments.lastKey() * segmentSize;
+        MappedByteBuffer segment = segments.lastEntry().getValue();
+
+        int position = 0;
+        while (isValid(segment, baseOffset + position, position)) {
+            position += HEADER_SIZE + segment.getInt(position + 4);
+        }
+
+        for (int i = position; i < segmentSize; i++) {
+            segment.put(i, (byte) 0);
+        }
+        segment.force();
+
+        nextOffset = baseOffset + position;
+    }
+
+    private MappedByteBuffer mapSegment(long baseOffset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(baseOffset),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private long parseBaseOffset(Path file) throws IOException {
+        String name = file.getFileName().toString();
+
+        try {
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+
+            if (baseOffset % segmentSize == 0) {
+                return baseOffset;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+
+        throw new IOException("Invalid event log segment " + file);
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    }
+
+    private boolean isValid(MappedByteBuffer segment, long offset, int position) {
+        if (position + HEADER_SIZE > segmentSize) {
+            return false;
+        }
+
+        int length = segment.getInt(position + 4);
+        if (length <= 0 || length > segmentSize - HEADER_SIZE - position) {
+            return false;
+        }
+
+        return segment.getInt(position) == checksum(offset, length, slice(segment, position + HEADER_SIZE, length));
+    }
+
+    private static ByteBuffer slice(MappedByteBuffer segment, int position, int length) {
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(position).limit(position + length);
+        return buffer.slice();
+    }
+
+    private static int checksum(long offset, int length, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(12).putLong(offset).putInt(length).flip());
+        crc.update(payload);
+
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(OutboxEventType type, Date createdAt, User user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type.getCode());
+            out.writeLong(createdAt.getTime());
+            out.writeLong(user.getId());
+            writeString(out, user.getUsername());
+            writeString(out, user.getEmail());
+            writeString(out, user.getPasswordResetToken());
+            out.writeLong(user.getPasswordRequestedAt() == null ? NO_DATE : user.getPasswordRequestedAt().getTime());
+            writeString(out, user.getLocale() == null ? null : user.getLocale().toLanguageTag());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static OutboxRecord decode(long offset, long nextOffset, ByteBuffer payload) {
+        OutboxEventType type = OutboxEventType.fromCode(payload.get());
+        Date createdAt = new Date(payload.getLong());
+
+        OutboxUser user = new OutboxUser();
+        user.setId(payload.getLong());
+        user.setUsername(readString(payload));
+        user.setEmail(readString(payload));
+        user.setPasswordResetToken(readString(payload));
+
+        long passwordRequestedAt = payload.getLong();
+        user.setPasswordRequestedAt(passwordRequestedAt == NO_DATE ? null : new Date(passwordRequestedAt));
+
+        String locale = readString(payload);
+        user.setLocale(locale == null ? null : Locale.forLanguageTag(locale));
+
+        return new OutboxRecord(offset, nextOffset, type, createdAt, user);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer payload) {
+        int length = payload.getInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,375 @@
+package com.mallorcasoftware.user.outbox;
+
+import com.mallorcasoftware.user.event.PasswordChangedEvent;
+import com.mallorcasoftware.user.event.PasswordResetEvent;
+import com.mallorcasoftware.user.event.RequestPasswordResetEvent;
+import com.mallorcasoftware.user.event.UserCreatedEvent;
+import com.mallorcasoftware.user.listener.UserListener;
+import com.mallorcasoftware.user.model.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Delivers the events of an {@link EventLog} to the registered listeners.
+ * <p>
+ * The offset of the next undelivered record is checkpointed to a file after each batch,
+ * so after a restart delivery continues where it stopped. Delivery is at-least-once: if
+ * a listener throws or the process dies before the checkpoint is written, the affected
+ * records are delivered again, to every listener. Listeners receive the user as it was
+ * when the event was logged (see {@link OutboxUser}), not the entity from the UserDao, so
+ * late deliveries and replays carry the data of the original event.
+ * <p>
+ * A record a listener fails on is retried with exponential backoff, starting at one second
+ * and doubling up to five minutes; later records wait for it to keep their order. After
+ * maxAttempts (15 by default, about half an hour of retries) the record is skipped and
+ * handed to {@link OutboxErrorHandler#onDeadLetter}, so it can not block later events
+ * forever. The backoff does not depend on the poll interval of {@link #start(long)}.
+ * Without an error handler, failures are reported to the system logger.
+ * <p>
+ * Segments of the log which lie wholly before the checkpoint are deleted after each
+ * dispatch run, unless they hold records younger than the retention time. Replays can
+ * only start at offsets from {@link EventLog#getStartOffset()} on, so the retention time
+ * is how far back replays reach. It also bounds how long user data stays on disk.
+ */
+public class OutboxDispatcher implements Closeable {
+    private static final int BATCH_SIZE = 1000;
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 15;
+
+    private static final long DEFAULT_RETRY_BACKOFF_MILLIS = 1000;
+
+    private static final long DEFAULT_MAX_RETRY_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    private static final System.Logger LOGGER = System.getLogger(OutboxDispatcher.class.getName());
+
+    private EventLog eventLog;
+
+    private Path checkpointFile;
+
+    private long checkpoint;
+
+    private List<UserListener> userListeners = new CopyOnWriteArrayList<>();
+
+    private OutboxErrorHandler errorHandler;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+
+    private long maxRetryBackoffMillis = DEFAULT_MAX_RETRY_BACKOFF_MILLIS;
+
+    private long retentionMillis;
+
+    private LongSupplier clock;
+
+    private long failedOffset = -1;
+
+    private int failedAttempts;
+
+    private long retryAt;
+
+    private ScheduledExecutorService executor;
+
+    private Thread shutdownHook;
+
+    public OutboxDispatcher(EventLog eventLog, Path checkpointFile) throws IOException {
+        this(eventLog, checkpointFile, System::currentTimeMillis);
+    }
+
+    OutboxDispatcher(EventLog eventLog, Path checkpointFile, LongSupplier clock) throws IOException {
+        this.eventLog = eventLog;
+        this.checkpointFile = checkpointFile;
+        this.clock = clock;
+        // Deleted segments were dispatched before, even if the checkpoint file got lost
+        this.checkpoint = Math.max(readCheckpoint(), eventLog.getStartOffset());
+    }
+
+    public void addUserListener(UserListener userListener) {
+        userListeners.add(userListener);
+    }
+
+    public void setErrorHandler(OutboxErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param retryBackoffMillis    delay before the first retry of a failed record, doubled for every further retry
+     * @param maxRetryBackoffMillis upper limit of the delay between two retries
+     */
+    public synchronized void setRetryBackoff(long retryBackoffMillis, long maxRetryBackoffMillis) {
+        if (retryBackoffMillis < 0 || maxRetryBackoffMillis < retryBackoffMillis) {
+            throw new IllegalArgumentException("retryBackoffMillis must be between 0 and maxRetryBackoffMillis");
+        }
+
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+    }
+
+    /**
+     * Keeps dispatched records for the given time, so they can still be replayed. Defaults
+     * to 0, which deletes segments as soon as the checkpoint has passed them.
+     *
+     * @param retentionMillis minimum time to keep a dispatched record
+     */
+    public synchronized void setRetentionMillis(long retentionMillis) {
+        if (retentionMillis < 0) {
+            throw new IllegalArgumentException("retentionMillis must not be negative");
+        }
+
+        this.retentionMillis = retentionMillis;
+    }
+
+    public synchronized long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Delivers all records after the checkpoint to the registered listeners. Stops at a
+     * failed record whose next retry is not due yet.
+     *
+     * @return number of delivered records, without skipped ones
+     * @throws IOException if the checkpoint can not be written or a segment can not be deleted
+     * @throws RuntimeException the failure of a listener, if the record has attempts left
+     */
+    public synchronized int dispatchPending() throws IOException {
+        eventLog.sync();
+
+        int delivered = 0;
+        boolean backingOff = false;
+        List<OutboxRecord> records;
+
+        while (!backingOff && !(records = eventLog.read(checkpoint, BATCH_SIZE)).isEmpty()) {
+            long next = checkpoint;
+
+            try {
+                for (OutboxRecord record : records) {
+                    if (record.getOffset() == failedOffset && clock.getAsLong() < retryAt) {
+                        backingOff = true;
+                        break;
+                    }
+
+                    if (tryDeliver(record)) {
+                        delivered++;
+                    }
+                    next = record.getNextOffset();
+                }
+            } finally {
+                writeCheckpoint(next);
+            }
+        }
+
+        eventLog.deleteSegments(checkpoint, clock.getAsLong() - retentionMillis);
+
+        return delivered;
+    }
+
+    /**
+     * Delivers all records from the given offset up to the current end of the log to the
+     * given listener. The checkpoint is not changed. Records before
+     * {@link EventLog#getStartOffset()} were deleted by the retention and can not be replayed.
+     *
+     * @param fromOffset   offset of the first record to replay, as returned by {@link EventLog#append}
+     * @param userListener listener to deliver the records to
+     * @return number of replayed records
+     * @throws IllegalArgumentException if fromOffset is before the start of the log or no record offset
+     */
+    public int replay(long fromOffset, UserListener userListener) {
+        List<UserListener> listeners = List.of(userListener);
+        long end = eventLog.getNextOffset();
+        long offset = fromOffset;
+        int replayed = 0;
+
+        while (offset < end) {
+            List<OutboxRecord> records = eventLog.read(offset, BATCH_SIZE);
+
+            for (OutboxRecord record : records) {
+                if (record.getOffset() >= end) {
+                    return replayed;
+                }
+
+                deliver(record, listeners);
+                offset = record.getNextOffset();
+                replayed++;
+            }
+
+            if (records.isEmpty()) {
+                break;
+            }
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Starts dispatching pending records in the background.
+     *
+     * @param pollIntervalMillis delay between two dispatch runs
+     */
+    public synchronized void start(long pollIntervalMillis) {
+        if (executor != null) {
+            throw new IllegalStateException("Dispatcher is already started");
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-outbox-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                dispatchPending();
+            } catch (IOException | RuntimeException e) {
+                // Undelivered records stay behind the checkpoint and are retried on the next run
+                reportDispatchFailure(e);
+            }
+        }, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+
+        // Pending records are delivered after the restart, they only have to reach the disk
+        shutdownHook = new Thread(eventLog::sync, "user-outbox-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Stops the background dispatching and delivers the remaining records.
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = executor;
+            executor = null;
+
+            if (shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // JVM is already shutting down and the hook syncs anyway
+                }
+                shutdownHook = null;
+            }
+        }
+
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        dispatchPending();
+    }
+
+    private boolean tryDeliver(OutboxRecord record) {
+        try {
+            deliver(record, userListeners);
+        } catch (RuntimeException e) {
+            if (record.getOffset() != failedOffset) {
+                failedOffset = record.getOffset();
+                failedAttempts = 0;
+            }
+
+            if (++failedAttempts < maxAttempts) {
+                retryAt = clock.getAsLong() + backoff(failedAttempts);
+                throw e;
+            }
+
+            failedOffset = -1;
+            failedAttempts = 0;
+            reportDeadLetter(record, e);
+            return false;
+        }
+
+        failedOffset = -1;
+        failedAttempts = 0;
+        return true;
+    }
+
+    private long backoff(int attempts) {
+        long backoff = retryBackoffMillis;
+
+        for (int i = 1; i < attempts && backoff < maxRetryBackoffMillis; i++) {
+            backoff = backoff > maxRetryBackoffMillis / 2 ? maxRetryBackoffMillis : backoff * 2;
+        }
+
+        return backoff;
+    }
+
+    private void reportDispatchFailure(Exception exception) {
+        if (errorHandler != null) {
+            errorHandler.onDispatchFailure(exception);
+        } else {
+            LOGGER.log(System.Logger.Level.WARNING, "Dispatching outbox events failed", exception);
+        }
+    }
+
+    private void reportDeadLetter(OutboxRecord record, RuntimeException exception) {
+        if (errorHandler != null) {
+            errorHandler.onDeadLetter(record, exception);
+        } else {
+            LOGGER.log(System.Logger.Level.ERROR, "Skipped outbox event " + record.getType()
+                    + " at offset " + record.getOffset() + " after " + maxAttempts + " attempts", exception);
+        }
+    }
+
+    private void deliver(OutboxRecord record, List<UserListener> listeners) {
+        User user = record.getUser();
+
+        for (UserListener userListener : listeners) {
+            switch (record.getType()) {
+                case USER_CREATED:
+                    userListener.onCreateUser(new UserCreatedEvent(user));
+                    break;
+                case PASSWORD_CHANGED:
+                    userListener.onChangePassword(new PasswordChangedEvent(user));
+                    break;
+                case REQUEST_PASSWORD_RESET:
+                    userListener.onRequestPasswordReset(new RequestPasswordResetEvent(user));
+                    break;
+                case PASSWORD_RESET:
+                    userListener.onPasswordReset(new PasswordResetEvent(user));
+                    break;
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+
+        return Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim());
+    }
+
+    private void writeCheckpoint(long offset) throws IOException {
+        if (offset == checkpoint) {
+            return;
+        }
+
+        Path tempFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.write(tempFile, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        checkpoint = offset;
+    }
+}
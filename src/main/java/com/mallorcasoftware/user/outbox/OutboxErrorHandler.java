@@ -0,0 +1,18 @@
+package com.mallorcasoftware.user.outbox;
+
+public interface OutboxErrorHandler {
+    /**
+     * Called when a background dispatch run fails. Undelivered records are retried on the next run.
+     *
+     * @param exception cause of the failure
+     */
+    void onDispatchFailure(Exception exception);
+
+    /**
+     * Called when a record is skipped because a listener failed on it too often.
+     *
+     * @param record    skipped record
+     * @param exception last failure of the listener
+     */
+    void onDeadLetter(OutboxRecord record, RuntimeException exception);
+}
@@ -0,0 +1,28 @@
+package com.mallorcasoftware.user.outbox;
+
+public enum OutboxEventType {
+    USER_CREATED(1),
+    PASSWORD_CHANGED(2),
+    REQUEST_PASSWORD_RESET(3),
+    PASSWORD_RESET(4);
+
+    private final byte code;
+
+    OutboxEventType(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static OutboxEventType fromCode(byte code) {
+        for (OutboxEventType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown outbox event type " + code);
+    }
+}
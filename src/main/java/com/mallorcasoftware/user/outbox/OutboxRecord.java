@@ -0,0 +1,47 @@
+package com.mallorcasoftware.user.outbox;
+
+import com.mallorcasoftware.user.model.User;
+
+import java.util.Date;
+
+public class OutboxRecord {
+    private final long offset;
+    private final long nextOffset;
+    private final OutboxEventType type;
+    private final Date createdAt;
+    private final User user;
+
+    public OutboxRecord(long offset, long nextOffset, OutboxEventType type, Date createdAt, User user) {
+        this.offset = offset;
+        this.nextOffset = nextOffset;
+        this.type = type;
+        this.createdAt = createdAt;
+        this.user = user;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return offset to continue reading at after this record
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public OutboxEventType getType() {
+        return type;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return the user as it was when the event was logged
+     */
+    public User getUser() {
+        return user;
+    }
+}
@@ -0,0 +1,90 @@
+package com.mallorcasoftware.user.outbox;
+
+import com.mallorcasoftware.user.model.User;
+
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Snapshot of a user as it was when an event was logged. The password is never
+ * written to the event log, so {@link #getPassword()} is always null for logged users.
+ */
+public class OutboxUser implements User {
+    private long id;
+    private String username;
+    private String email;
+    private String password;
+    private String passwordResetToken;
+    private Date passwordRequestedAt;
+    private Locale locale;
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public String getEmail() {
+        return email;
+    }
+
+    @Override
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    @Override
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    @Override
+    public String getPasswordResetToken() {
+        return passwordResetToken;
+    }
+
+    @Override
+    public void setPasswordResetToken(String passwordResetToken) {
+        this.passwordResetToken = passwordResetToken;
+    }
+
+    @Override
+    public Date getPasswordRequestedAt() {
+        return passwordRequestedAt;
+    }
+
+    @Override
+    public void setPasswordRequestedAt(Date passwordRequestedAt) {
+        this.passwordRequestedAt = passwordRequestedAt;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locale;
+    }
+
+    @Override
+    public void setLocale(Locale locale) {
+        this.locale = locale;
+    }
+}
@@ -0,0 +1,58 @@
+package com.mallorcasoftware.user.outbox;
+
+import com.mallorcasoftware.user.event.AbstractUserEvent;
+import com.mallorcasoftware.user.event.PasswordChangedEvent;
+import com.mallorcasoftware.user.event.PasswordResetEvent;
+import com.mallorcasoftware.user.event.RequestPasswordResetEvent;
+import com.mallorcasoftware.user.event.UserCreatedEvent;
+import com.mallorcasoftware.user.listener.UserListener;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Listener which appends every event to an {@link EventLog} instead of handling it.
+ * Set it with {@code UserService.setOutboxListener}, which notifies it before any other
+ * listener, and register the real listeners with an {@link OutboxDispatcher}.
+ * <p>
+ * This is not a transactional outbox. The UserService notifies listeners only after
+ * {@code userDao.save} has returned, so an event is lost if the process dies between the
+ * save and the append. An appended event is durable once the log has been synced, which
+ * happens in batches (see {@link EventLog}). From then on it survives restarts and is
+ * delivered at least once.
+ */
+public class OutboxUserListener implements UserListener {
+    private EventLog eventLog;
+
+    public OutboxUserListener(EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
+
+    @Override
+    public void onCreateUser(UserCreatedEvent userCreatedEvent) {
+        append(OutboxEventType.USER_CREATED, userCreatedEvent);
+    }
+
+    @Override
+    public void onChangePassword(PasswordChangedEvent passwordChangedEvent) {
+        append(OutboxEventType.PASSWORD_CHANGED, passwordChangedEvent);
+    }
+
+    @Override
+    public void onRequestPasswordReset(RequestPasswordResetEvent requestPasswordResetEvent) {
+        append(OutboxEventType.REQUEST_PASSWORD_RESET, requestPasswordResetEvent);
+    }
+
+    @Override
+    public void onPasswordReset(PasswordResetEvent passwordResetEvent) {
+        append(OutboxEventType.PASSWORD_RESET, passwordResetEvent);
+    }
+
+    private void append(OutboxEventType type, AbstractUserEvent event) {
+        try {
+            eventLog.append(type, event.getUser());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
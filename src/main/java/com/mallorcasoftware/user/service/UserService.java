@@ -13,14 +13,20 @@ import com.mallorcasoftware.user.listener.UserListener;
 import com.mallorcasoftware.user.model.CreateUser;
 import com.mallorcasoftware.user.model.User;
 import com.mallorcasoftware.user.service.encoder.PasswordEncoder;
+import com.mallorcasoftware.user.service.throttle.RequestThrottle;
+import com.mallorcasoftware.user.service.throttle.TokenBucketRequestThrottle;
 import com.mallorcasoftware.user.service.token.TokenGenerator;
 import com.mallorcasoftware.user.service.validator.UserValidator;
+import com.mallorcasoftware.user.service.writebehind.WriteBehindBuffer;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class UserService<T extends User> {
+    private static final long DEFAULT_PASSWORD_RESET_RESEND_INTERVAL_MILLIS = 60 * 1000;
 
     private UserDao<T> userDao;
 
@@ -32,6 +38,17 @@ public class UserService<T extends User> {
 
     private Integer passwordResetTokenTtl = 300;
 
+    private Integer passwordResetReuseWindow = 0;
+
+    private RequestThrottle passwordResetThrottle;
+
+    private RequestThrottle passwordResetResendThrottle =
+            new TokenBucketRequestThrottle(1, DEFAULT_PASSWORD_RESET_RESEND_INTERVAL_MILLIS);
+
+    private WriteBehindBuffer<T> writeBehindBuffer;
+
+    private UserListener outboxListener;
+
     private List<UserListener> userListeners = new ArrayList<UserListener>();
 
     public UserService(UserDao<T> userDao, UserValidator userValidator, PasswordEncoder passwordEncoder,
@@ -53,7 +70,10 @@ public class UserService<T extends User> {
     }
 
     public T createUser(CreateUser<T> createUser) throws UserAlreadyExistException {
-        if (userDao.findByUsername(createUser.getUser().getUsername()).isPresent()) {
+        String username = createUser.getUser().getUsername();
+
+        if (userDao.findByUsername(username).isPresent()
+                || (writeBehindBuffer != null && writeBehindBuffer.findByUsername(username) != null)) {
             throw new UserAlreadyExistException();
         }
 
@@ -61,46 +81,87 @@ public class UserService<T extends User> {
 
         createUser.getUser().setPassword(passwordEncoder.encode(createUser.getPlainPassword()));
 
-        userDao.save(createUser.getUser());
+        save(createUser.getUser());
 
-        for (UserListener userListener : userListeners) {
-            userListener.onCreateUser(new UserCreatedEvent(createUser.getUser()));
-        }
+        UserCreatedEvent userCreatedEvent = new UserCreatedEvent(createUser.getUser());
+        notifyListeners(userListener -> userListener.onCreateUser(userCreatedEvent));
 
         return createUser.getUser();
     }
 
     public T findUser(Long id) {
+        if (writeBehindBuffer != null && id != null) {
+            T pendingUser = writeBehindBuffer.get(id);
+
+            if (pendingUser != null) {
+                return pendingUser;
+            }
+        }
+
         return userDao.findById(id).orElse(null);
     }
 
     public T findUser(String username) {
-        return userDao.findByUsername(username).orElse(null);
+        if (writeBehindBuffer != null) {
+            T pendingUser = writeBehindBuffer.findByUsername(username);
+
+            if (pendingUser != null) {
+                return pendingUser;
+            }
+        }
+
+        return pending(userDao.findByUsername(username).orElse(null), user -> username.equals(user.getUsername()));
     }
 
     public T findUserByUsernameOrEmail(String value) {
-        return userDao.findByUsernameOrEmail(value, value).orElse(null);
+        if (writeBehindBuffer != null) {
+            T pendingUser = writeBehindBuffer.findByUsername(value);
+
+            if (pendingUser == null) {
+                pendingUser = writeBehindBuffer.findByEmail(value);
+            }
+
+            if (pendingUser != null) {
+                return pendingUser;
+            }
+        }
+
+        return pending(userDao.findByUsernameOrEmail(value, value).orElse(null),
+                user -> value.equals(user.getUsername()) || value.equals(user.getEmail()));
     }
 
     public void requestPasswordReset(String usernameOrEmail) throws UserNotFoundException {
-        T user = userDao.findByUsernameOrEmail(usernameOrEmail, usernameOrEmail).orElse(null);
+        T user = findUserByUsernameOrEmail(usernameOrEmail);
 
         if (user == null) {
             throw new UserNotFoundException();
         }
 
+        // A still pending token needs no new save; its mail is sent again at most once per resend interval
+        if (isPasswordResetTokenReusable(user)) {
+            if (passwordResetResendThrottle.tryAcquire(String.valueOf(user.getId()))) {
+                RequestPasswordResetEvent requestPasswordResetEvent = new RequestPasswordResetEvent(user);
+                notifyListeners(userListener -> userListener.onRequestPasswordReset(requestPasswordResetEvent));
+            }
+            return;
+        }
+
+        if (passwordResetThrottle != null && !passwordResetThrottle.tryAcquire(String.valueOf(user.getId()))) {
+            return;
+        }
+
         user.setPasswordResetToken(tokenGenerator.generateToken(user.getEmail()));
         user.setPasswordRequestedAt(new Date());
 
-        userDao.save(user);
+        save(user);
 
-        for (UserListener userListener : userListeners) {
-            userListener.onRequestPasswordReset(new RequestPasswordResetEvent(user));
-        }
+        RequestPasswordResetEvent requestPasswordResetEvent = new RequestPasswordResetEvent(user);
+        notifyListeners(userListener -> userListener.onRequestPasswordReset(requestPasswordResetEvent));
     }
 
     public void passwordReset(String token, String password, String passwordConfirmation) throws UserNotFoundException, PasswordResetTokenNotValidException, PasswordConfirmationNotMatchException {
-        T user = userDao.findByPasswordResetToken(token).orElse(null);
+        T user = pending(userDao.findByPasswordResetToken(token).orElse(null),
+                pendingUser -> token.equals(pendingUser.getPasswordResetToken()));
 
         if (user == null) {
             throw new UserNotFoundException();
@@ -123,12 +184,12 @@ public class UserService<T extends User> {
 
         userValidator.validatePassword(passwordConfirmation);
         user.setPassword(passwordEncoder.encode(passwordConfirmation));
+        user.setPasswordResetToken(null);
 
-        userDao.save(user);
+        save(user);
 
-        for (UserListener userListener : userListeners) {
-            userListener.onPasswordReset(new PasswordResetEvent(user));
-        }
+        PasswordResetEvent passwordResetEvent = new PasswordResetEvent(user);
+        notifyListeners(userListener -> userListener.onPasswordReset(passwordResetEvent));
     }
 
     public void changePassword(T user, String password, String passwordConfirmation) throws PasswordConfirmationNotMatchException {
@@ -139,18 +200,123 @@ public class UserService<T extends User> {
         userValidator.validatePassword(passwordConfirmation);
         user.setPassword(passwordEncoder.encode(passwordConfirmation));
 
-        userDao.save(user);
+        save(user);
 
-        for (UserListener userListener : userListeners) {
-            userListener.onChangePassword(new PasswordChangedEvent(user));
+        PasswordChangedEvent passwordChangedEvent = new PasswordChangedEvent(user);
+        notifyListeners(userListener -> userListener.onChangePassword(passwordChangedEvent));
+    }
+
+    public boolean verifyPassword(T user, String password) {
+        if (!passwordEncoder.matches(password, user.getPassword())) {
+            return false;
         }
+
+        if (passwordEncoder.upgradeEncoding(user.getPassword())) {
+            user.setPassword(passwordEncoder.encode(password));
+            save(user);
+        }
+
+        return true;
     }
 
     public void updateUser(T user) {
-        userDao.save(user);
+        if (writeBehindBuffer != null && user.getId() != 0) {
+            writeBehindBuffer.put(user);
+            return;
+        }
+
+        save(user);
     }
 
     public void addUserListener(UserListener userListener) {
         userListeners.add(userListener);
     }
+
+    /**
+     * Sets a listener which is notified of every event before all other listeners, e.g. an
+     * OutboxUserListener. Events are then in the outbox before any in-process listener runs;
+     * if the outbox listener throws, the other listeners are not notified.
+     *
+     * @param outboxListener listener to notify first
+     */
+    public void setOutboxListener(UserListener outboxListener) {
+        this.outboxListener = outboxListener;
+    }
+
+    public void setPasswordResetReuseWindow(Integer passwordResetReuseWindow) {
+        this.passwordResetReuseWindow = passwordResetReuseWindow;
+    }
+
+    public void setPasswordResetThrottle(RequestThrottle passwordResetThrottle) {
+        this.passwordResetThrottle = passwordResetThrottle;
+    }
+
+    /**
+     * Limits how often the event for a reused password reset token is fired again, by user id.
+     * Defaults to once per minute.
+     *
+     * @param passwordResetResendThrottle throttle for repeated reset events
+     */
+    public void setPasswordResetResendThrottle(RequestThrottle passwordResetResendThrottle) {
+        this.passwordResetResendThrottle = passwordResetResendThrottle;
+    }
+
+    /**
+     * Buffers updateUser saves in the given buffer. The buffer is started if it is not
+     * running yet, so pending updates are flushed over time and on JVM shutdown.
+     *
+     * @param writeBehindBuffer buffer for user updates
+     */
+    public void setWriteBehindBuffer(WriteBehindBuffer<T> writeBehindBuffer) {
+        if (!writeBehindBuffer.isStarted()) {
+            writeBehindBuffer.start();
+        }
+
+        this.writeBehindBuffer = writeBehindBuffer;
+    }
+
+    private void notifyListeners(Consumer<UserListener> notification) {
+        if (outboxListener != null) {
+            notification.accept(outboxListener);
+        }
+
+        for (UserListener userListener : userListeners) {
+            notification.accept(userListener);
+        }
+    }
+
+    private void save(T user) {
+        // A direct save supersedes a buffered update of the same user
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.discard(user.getId());
+        }
+
+        userDao.save(user);
+    }
+
+    private T pending(T user, Predicate<T> matchesLookup) {
+        if (writeBehindBuffer == null || user == null) {
+            return user;
+        }
+
+        T pendingUser = writeBehindBuffer.get(user.getId());
+
+        if (pendingUser == null) {
+            return user;
+        }
+
+        // The stored user is outdated; a buffered update may have changed the key it was found by
+        return matchesLookup.test(pendingUser) ? pendingUser : null;
+    }
+
+    private boolean isPasswordResetTokenReusable(T user) {
+        if (passwordResetReuseWindow <= 0 || user.getPasswordResetToken() == null || user.getPasswordRequestedAt() == null) {
+            return false;
+        }
+
+        long diffSeconds = (new Date().getTime() - user.getPasswordRequestedAt().getTime()) / 1000;
+
+        // Only reuse a token with at least half of its TTL left, so the mail is still usable when it arrives
+        return diffSeconds >= 0 && diffSeconds < Math.min(passwordResetReuseWindow, passwordResetTokenTtl / 2);
+    }
 }
@@ -0,0 +1,222 @@
+package com.mallorcasoftware.user.service.encoder;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * PBKDF2 password encoder which benchmarks the host on creation and picks the
+ * iteration count needed to reach the given target latency per hash.
+ * <p>
+ * The iteration count is stored in the encoded password ({@code iterations$salt$hash}),
+ * so passwords hashed on a weaker host or with an older target can still be
+ * verified. The calibrated count never drops below minIterations, which defaults to the
+ * current OWASP recommendation for PBKDF2-HMAC-SHA256 of 600,000, so small hosts stay
+ * protected even if they can not hash that fast. {@link #upgradeEncoding(String)} only reports passwords hashed with less than
+ * half of the current iteration count, so the noise between two calibrations of the same
+ * host does not cause rehashes. Calibration waits for the JIT to settle and can take a few
+ * seconds on small hosts.
+ */
+public class CalibratingPasswordEncoder implements PasswordEncoder {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final String SEPARATOR = "$";
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final int HASH_LENGTH = 256;
+
+    private static final int PROBE_START_ITERATIONS = 1000;
+
+    private static final long PROBE_MIN_NANOS = 50_000_000L;
+
+    private static final int WARMUP_STABLE_ROUNDS = 5;
+
+    private static final long WARMUP_STABLE_NANOS = 1_000_000_000L;
+
+    private static final long WARMUP_MAX_NANOS = 5_000_000_000L;
+
+    private static final int PROBE_ROUNDS = 9;
+
+    private static final double UPGRADE_THRESHOLD = 0.5;
+
+    private static final int ITERATION_STEP = 1000;
+
+    private static final long DEFAULT_TARGET_MILLIS = 250;
+
+    private static final int DEFAULT_MIN_ITERATIONS = 600_000;
+
+    private SecureRandom random = new SecureRandom();
+
+    private int iterations;
+
+    public CalibratingPasswordEncoder() {
+        this(DEFAULT_TARGET_MILLIS);
+    }
+
+    public CalibratingPasswordEncoder(long targetMillis) {
+        this(targetMillis, DEFAULT_MIN_ITERATIONS);
+    }
+
+    public CalibratingPasswordEncoder(long targetMillis, int minIterations) {
+        if (targetMillis <= 0) {
+            throw new IllegalArgumentException("targetMillis must be positive");
+        }
+
+        if (minIterations <= 0) {
+            throw new IllegalArgumentException("minIterations must be positive");
+        }
+
+        this.iterations = Math.max(minIterations, calibrate(targetMillis));
+    }
+
+    private CalibratingPasswordEncoder(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * @param iterations iteration count to use
+     * @return encoder which skips the calibration and uses the given iteration count
+     */
+    static CalibratingPasswordEncoder withIterations(int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("iterations must be positive");
+        }
+
+        return new CalibratingPasswordEncoder(iterations);
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public String encode(CharSequence value) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+
+        byte[] hash = hash(value, salt, iterations);
+
+        Base64.Encoder encoder = Base64.getEncoder();
+        return iterations + SEPARATOR + encoder.encodeToString(salt) + SEPARATOR + encoder.encodeToString(hash);
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        String[] parts = split(encodedPassword);
+
+        if (parts == null) {
+            return false;
+        }
+
+        try {
+            int storedIterations = Integer.parseInt(parts[0]);
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expectedHash = Base64.getDecoder().decode(parts[2]);
+
+            if (storedIterations <= 0) {
+                return false;
+            }
+
+            return MessageDigest.isEqual(expectedHash, hash(rawPassword, salt, storedIterations));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        String[] parts = split(encodedPassword);
+
+        if (parts == null) {
+            return true;
+        }
+
+        try {
+            // Calibrations of the same host differ by up to ~1.4x, which must not force a rehash
+            return Integer.parseInt(parts[0]) < iterations * UPGRADE_THRESHOLD;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private int calibrate(long targetMillis) {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+
+        long targetNanos = targetMillis * 1_000_000L;
+        long probeNanos = Math.min(targetNanos, PROBE_MIN_NANOS);
+
+        // Hash until the JIT has settled: the cost per iteration drops several times while
+        // the code gets compiled, so stop only once it has not improved for a while. The
+        // probe is resized every round to take about probeNanos at the current speed.
+        int probeIterations = PROBE_START_ITERATIONS;
+        double best = Double.MAX_VALUE;
+        int roundsWithoutImprovement = 0;
+        long start = System.nanoTime();
+        long lastImprovement = start;
+
+        while (true) {
+            double perIteration = time(salt, probeIterations) / (double) probeIterations;
+            long now = System.nanoTime();
+
+            if (perIteration < best * 0.95) {
+                lastImprovement = now;
+                roundsWithoutImprovement = 0;
+            } else {
+                roundsWithoutImprovement++;
+            }
+            best = Math.min(best, perIteration);
+            probeIterations = (int) Math.max(PROBE_START_ITERATIONS, Math.min(Integer.MAX_VALUE, probeNanos / best));
+
+            boolean stable = roundsWithoutImprovement >= WARMUP_STABLE_ROUNDS && now - lastImprovement >= WARMUP_STABLE_NANOS;
+            if (stable || now - start >= WARMUP_MAX_NANOS) {
+                break;
+            }
+        }
+
+        long[] timings = new long[PROBE_ROUNDS];
+        for (int i = 0; i < PROBE_ROUNDS; i++) {
+            timings[i] = time(salt, probeIterations);
+        }
+        Arrays.sort(timings);
+
+        double perIteration = Math.max(1L, timings[PROBE_ROUNDS / 2]) / (double) probeIterations;
+        double target = targetNanos / perIteration;
+        long rounded = (long) Math.ceil(target / ITERATION_STEP) * ITERATION_STEP;
+
+        return (int) Math.min(Integer.MAX_VALUE, rounded);
+    }
+
+    private static long time(byte[] salt, int iterations) {
+        long start = System.nanoTime();
+        hash("calibration", salt, iterations);
+        return System.nanoTime() - start;
+    }
+
+    private static byte[] hash(CharSequence value, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(value.toString().toCharArray(), salt, iterations, HASH_LENGTH);
+
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to hash password with " + ALGORITHM, e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String[] split(String encodedPassword) {
+        if (encodedPassword == null) {
+            return null;
+        }
+
+        String[] parts = encodedPassword.split("\\" + SEPARATOR);
+
+        return parts.length == 3 ? parts : null;
+    }
+}
@@ -3,4 +3,15 @@ package com.mallorcasoftware.user.service.encoder;
 public interface PasswordEncoder {
     String encode(CharSequence value);
     boolean matches(CharSequence rawPassword, String encodedPassword);
+
+    /**
+     * Checks if the given encoded password was hashed with weaker settings than
+     * the encoder currently uses and should be encoded again.
+     *
+     * @param encodedPassword stored encoded password
+     * @return true if the password should be re-encoded
+     */
+    default boolean upgradeEncoding(String encodedPassword) {
+        return false;
+    }
 }
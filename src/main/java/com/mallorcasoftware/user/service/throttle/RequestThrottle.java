@@ -0,0 +1,11 @@
+package com.mallorcasoftware.user.service.throttle;
+
+public interface RequestThrottle {
+    /**
+     * Tries to take a permit for the given key.
+     *
+     * @param key identity the request is made for
+     * @return true if the request is allowed, false if it should be dropped
+     */
+    boolean tryAcquire(String key);
+}
@@ -0,0 +1,108 @@
+package com.mallorcasoftware.user.service.throttle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free token bucket throttle keeping one bucket per key in a fixed size table.
+ * <p>
+ * Every bucket is packed into a single long (refill timestamp in the upper 48 bits,
+ * available tokens in the lower 16 bits) and updated with compare-and-set, so the
+ * table never grows and needs no locking. Keys hashing to the same slot share a
+ * bucket, which can only make the throttle stricter, never looser.
+ */
+public class TokenBucketRequestThrottle implements RequestThrottle {
+    private static final int TOKEN_BITS = 16;
+
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    private static final int DEFAULT_SLOTS = 4096;
+
+    private final AtomicLongArray buckets;
+
+    private final int mask;
+
+    private final int capacity;
+
+    private final long refillIntervalMillis;
+
+    private final LongSupplier clock;
+
+    private final long origin;
+
+    public TokenBucketRequestThrottle(int capacity, long refillIntervalMillis) {
+        this(capacity, refillIntervalMillis, DEFAULT_SLOTS);
+    }
+
+    public TokenBucketRequestThrottle(int capacity, long refillIntervalMillis, int slots) {
+        this(capacity, refillIntervalMillis, slots, System::currentTimeMillis);
+    }
+
+    TokenBucketRequestThrottle(int capacity, long refillIntervalMillis, int slots, LongSupplier clock) {
+        if (capacity <= 0 || capacity > TOKEN_MASK) {
+            throw new IllegalArgumentException("capacity must be between 1 and " + TOKEN_MASK);
+        }
+
+        if (refillIntervalMillis <= 0) {
+            throw new IllegalArgumentException("refillIntervalMillis must be positive");
+        }
+
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots must be positive");
+        }
+
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.capacity = capacity;
+        this.refillIntervalMillis = refillIntervalMillis;
+        this.clock = clock;
+        this.origin = clock.getAsLong();
+    }
+
+    @Override
+    public boolean tryAcquire(String key) {
+        int index = index(key);
+
+        while (true) {
+            // Timestamps are shifted by one so an untouched slot (0) is never a valid bucket
+            long now = Math.max(1, clock.getAsLong() - origin + 1);
+            long current = buckets.get(index);
+
+            long stamp;
+            long tokens;
+
+            if (current == 0) {
+                stamp = now;
+                tokens = capacity;
+            } else {
+                stamp = current >>> TOKEN_BITS;
+                tokens = current & TOKEN_MASK;
+
+                long refill = now > stamp ? (now - stamp) / refillIntervalMillis : 0;
+                if (refill > 0) {
+                    tokens = Math.min(capacity, tokens + refill);
+                    stamp = tokens == capacity ? now : stamp + refill * refillIntervalMillis;
+                }
+            }
+
+            if (tokens == 0) {
+                return false;
+            }
+
+            long next = (stamp << TOKEN_BITS) | (tokens - 1);
+            if (buckets.compareAndSet(index, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    private int index(String key) {
+        int hash = key == null ? 0 : key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,421 @@
+package com.mallorcasoftware.user.service.writebehind;
+
+import com.mallorcasoftware.user.dao.UserDao;
+import com.mallorcasoftware.user.model.User;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Buffers user saves by user id and writes them to the {@link UserDao} later.
+ * <p>
+ * Saving the same user several times before a flush results in a single save of the
+ * latest instance. Pending users are flushed once maxBatchSize users are buffered and on
+ * {@link #close()}. Time based flushing every flushIntervalMillis and the flush on JVM
+ * shutdown only happen once the buffer is started, see {@link #start()}; the UserService
+ * starts the buffer it is given.
+ * A user stays visible through {@link #get(long)}, {@link #findByUsername(String)} and
+ * {@link #findByEmail(String)} until its save has completed, so readers checking the buffer
+ * first always see their own writes, including changed usernames and emails.
+ * <p>
+ * Once maxPendingSize users are pending, e.g. because the UserDao is slow or down, users
+ * which are not pending yet are saved directly in the calling thread instead of being
+ * buffered, so the buffer can not grow without limit.
+ * <p>
+ * A failed save is reported to the {@link WriteBehindErrorHandler}, or to the system logger
+ * without one, and the user stays pending for the next flush. After maxAttempts failed saves
+ * the user is dropped and handed to {@link WriteBehindErrorHandler#onDeadLetter}, so a save
+ * that can never succeed, e.g. because of a constraint violation, is not retried forever.
+ */
+public class WriteBehindBuffer<T extends User> implements Closeable {
+    private static final int DEFAULT_MAX_PENDING_BATCHES = 10;
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    private static final System.Logger LOGGER = System.getLogger(WriteBehindBuffer.class.getName());
+
+    private UserDao<T> userDao;
+
+    private int maxBatchSize;
+
+    private long flushIntervalMillis;
+
+    private int maxPendingSize;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private WriteBehindErrorHandler<T> errorHandler;
+
+    private Map<Long, Entry<T>> pending = new ConcurrentHashMap<>();
+
+    // Users a flush is saving right now, released once their save has completed or failed
+    private Map<Long, CountDownLatch> saving = new ConcurrentHashMap<>();
+
+    private Map<String, Long> usernames = new ConcurrentHashMap<>();
+
+    private Map<String, Long> emails = new ConcurrentHashMap<>();
+
+    private AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private volatile ScheduledExecutorService executor;
+
+    private Thread shutdownHook;
+
+    public WriteBehindBuffer(UserDao<T> userDao, int maxBatchSize, long flushIntervalMillis) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("flushIntervalMillis must be positive");
+        }
+
+        this.userDao = userDao;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxPendingSize = (int) Math.min(Integer.MAX_VALUE, (long) maxBatchSize * DEFAULT_MAX_PENDING_BATCHES);
+    }
+
+    /**
+     * Limits the number of pending users. Defaults to ten times maxBatchSize.
+     *
+     * @param maxPendingSize number of pending users from which on new users are saved directly
+     */
+    public void setMaxPendingSize(int maxPendingSize) {
+        if (maxPendingSize < maxBatchSize) {
+            throw new IllegalArgumentException("maxPendingSize must be at least maxBatchSize");
+        }
+
+        this.maxPendingSize = maxPendingSize;
+    }
+
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setErrorHandler(WriteBehindErrorHandler<T> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Buffers the given user, replacing a pending save of the same user. If this fills the
+     * batch and the buffer is not started, the batch is flushed in the calling thread; save
+     * failures of that flush are not thrown, the affected users stay pending instead.
+     * If the buffer is full and the user is not pending yet, it is saved directly.
+     *
+     * @param user user to save
+     * @throws RuntimeException failure of the UserDao, only if the user was saved directly
+     */
+    public void put(T user) {
+        if (pending.size() >= maxPendingSize && !pending.containsKey(user.getId())) {
+            userDao.save(user);
+            return;
+        }
+
+        Entry<T> entry = new Entry<>(user);
+        Entry<T> previous = pending.put(user.getId(), entry);
+
+        index(entry);
+        if (previous != null) {
+            unindex(previous, entry);
+        }
+
+        if (pending.size() >= maxBatchSize) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * @param id user id
+     * @return pending user with the given id or null
+     */
+    public T get(long id) {
+        Entry<T> entry = pending.get(id);
+
+        return entry == null ? null : entry.user;
+    }
+
+    /**
+     * @param username username
+     * @return pending user which has the given username or null
+     */
+    public T findByUsername(String username) {
+        return find(usernames, username, entry -> entry.username);
+    }
+
+    /**
+     * @param email email
+     * @return pending user which has the given email or null
+     */
+    public T findByEmail(String email) {
+        return find(emails, email, entry -> entry.email);
+    }
+
+    /**
+     * Drops a pending save, e.g. because the user is saved directly. If a flush is saving
+     * this user right now, waits for that save, so the buffered instance can not overwrite
+     * a direct save made afterwards. Saves of other users are not waited for.
+     *
+     * @param id user id
+     */
+    public void discard(long id) {
+        Entry<T> previous = pending.remove(id);
+
+        if (previous != null) {
+            unindex(previous, null);
+        }
+
+        CountDownLatch saved = saving.get(id);
+        if (saved != null) {
+            awaitUninterruptibly(saved);
+        }
+    }
+
+    /**
+     * @return number of users waiting to be saved
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Saves all pending users. Users which fail to save are reported and stay pending until
+     * they reach maxAttempts, the others are saved anyway.
+     *
+     * @throws RuntimeException the first save failure, with later ones added as suppressed
+     */
+    public synchronized void flush() {
+        RuntimeException failure = null;
+
+        for (Map.Entry<Long, Entry<T>> entry : pending.entrySet()) {
+            CountDownLatch saved = new CountDownLatch(1);
+            saving.put(entry.getKey(), saved);
+
+            try {
+                // A discard before the user was marked as saving wins, a later one waits for the save
+                if (pending.get(entry.getKey()) != entry.getValue()) {
+                    continue;
+                }
+
+                userDao.save(entry.getValue().user);
+
+                // Keep the user if it was buffered again while being saved
+                if (pending.remove(entry.getKey(), entry.getValue())) {
+                    unindex(entry.getValue(), null);
+                }
+            } catch (RuntimeException e) {
+                handleSaveFailure(entry.getValue(), e);
+
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            } finally {
+                saving.remove(entry.getKey());
+                saved.countDown();
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return true if the buffer flushes in the background and on JVM shutdown
+     */
+    public synchronized boolean isStarted() {
+        return executor != null;
+    }
+
+    /**
+     * Starts flushing pending users in the background and on JVM shutdown.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            throw new IllegalStateException("Write-behind buffer is already started");
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+        shutdownHook = new Thread(this::flush, "user-write-behind-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Stops the background flushing and saves all pending users.
+     */
+    @Override
+    public void close() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = executor;
+            executor = null;
+
+            if (shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // JVM is already shutting down and the hook flushes anyway
+                }
+                shutdownHook = null;
+            }
+        }
+
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush();
+    }
+
+    private void scheduleFlush() {
+        ScheduledExecutorService running = executor;
+
+        if (running != null) {
+            // A queued flush saves every user buffered until it runs, so one is enough
+            if (!flushScheduled.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                running.execute(() -> {
+                    flushScheduled.set(false);
+                    flushQuietly();
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // Buffer is being closed, flush in the calling thread instead
+                flushScheduled.set(false);
+            }
+        }
+
+        // The batch holds other users too, their failures must not fail this put
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Failures were reported, the users stay pending and are retried on the next flush
+        }
+    }
+
+    private void handleSaveFailure(Entry<T> entry, RuntimeException exception) {
+        if (++entry.failedAttempts < maxAttempts) {
+            reportSaveFailure(entry.user, exception);
+            return;
+        }
+
+        // Give up on this instance; a newer one buffered in the meantime stays pending
+        if (pending.remove(entry.id, entry)) {
+            unindex(entry, null);
+        }
+        reportDeadLetter(entry.user, exception);
+    }
+
+    private void reportSaveFailure(T user, RuntimeException exception) {
+        if (errorHandler != null) {
+            errorHandler.onSaveFailure(user, exception);
+        } else {
+            LOGGER.log(System.Logger.Level.WARNING, "Saving buffered user " + user.getId()
+                    + " failed, retrying on the next flush", exception);
+        }
+    }
+
+    private void reportDeadLetter(T user, RuntimeException exception) {
+        if (errorHandler != null) {
+            errorHandler.onDeadLetter(user, exception);
+        } else {
+            LOGGER.log(System.Logger.Level.ERROR, "Dropped buffered user " + user.getId()
+                    + " after " + maxAttempts + " failed saves", exception);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private T find(Map<String, Long> index, String key, Function<Entry<T>, String> keyOf) {
+        if (key == null) {
+            return null;
+        }
+
+        Long id = index.get(key);
+        Entry<T> entry = id == null ? null : pending.get(id);
+
+        return entry != null && key.equals(keyOf.apply(entry)) ? entry.user : null;
+    }
+
+    private void index(Entry<T> entry) {
+        if (entry.username != null) {
+            usernames.put(entry.username, entry.id);
+        }
+
+        if (entry.email != null) {
+            emails.put(entry.email, entry.id);
+        }
+    }
+
+    private void unindex(Entry<T> previous, Entry<T> current) {
+        if (previous.username != null && (current == null || !previous.username.equals(current.username))) {
+            usernames.remove(previous.username, previous.id);
+        }
+
+        if (previous.email != null && (current == null || !previous.email.equals(current.email))) {
+            emails.remove(previous.email, previous.id);
+        }
+    }
+
+    private static class Entry<T extends User> {
+        private final T user;
+        private final long id;
+        private final String username;
+        private final String email;
+        private int failedAttempts;
+
+        private Entry(T user) {
+            this.user = user;
+            this.id = user.getId();
+            this.username = user.getUsername();
+            this.email = user.getEmail();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.mallorcasoftware.user.service.writebehind;
+
+import com.mallorcasoftware.user.model.User;
+
+public interface WriteBehindErrorHandler<T extends User> {
+    /**
+     * Called when saving a buffered user fails. The user stays pending and is retried on the next flush.
+     *
+     * @param user      user which could not be saved
+     * @param exception failure of the UserDao
+     */
+    void onSaveFailure(T user, RuntimeException exception);
+
+    /**
+     * Called when a buffered user is dropped because saving it failed too often.
+     *
+     * @param user      dropped user
+     * @param exception last failure of the UserDao
+     */
+    void onDeadLetter(T user, RuntimeException exception);
+}
@@ -0,0 +1,171 @@
+package com.mallorcasoftware.user.outbox;
+
+import com.mallorcasoftware.user.model.User;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadAppendedRecordsWithUserSnapshot() throws IOException {
+        Date passwordRequestedAt = new Date(1500000000000L);
+        User user = user(12L);
+        user.setPasswordResetToken("resetToken");
+        user.setPasswordRequestedAt(passwordRequestedAt);
+        user.setLocale(Locale.GERMANY);
+        user.setPassword("encodedPassword");
+
+        try (EventLog eventLog = new EventLog(folder.getRoot().toPath(), 1024, 2)) {
+            long first = eventLog.append(OutboxEventType.REQUEST_PASSWORD_RESET, user);
+            long second = eventLog.append(OutboxEventType.PASSWORD_RESET, user(13L));
+
+            List<OutboxRecord> records = eventLog.read(first, 10);
+
+            assertEquals(2, records.size());
+            assertEquals(0, first);
+            assertEquals(second, records.get(0).getNextOffset());
+
+            User snapshot = records.get(0).getUser();
+            assertEquals(OutboxEventType.REQUEST_PASSWORD_RESET, records.get(0).getType());
+            assertEquals(12L, snapshot.getId());
+            assertEquals("user12", snapshot.getUsername());
+            assertEquals("user12@example.com", snapshot.getEmail());
+            assertEquals("resetToken", snapshot.getPasswordResetToken());
+            assertEquals(passwordRequestedAt, snapshot.getPasswordRequestedAt());
+            assertEquals(Locale.GERMANY, snapshot.getLocale());
+            assertNull(snapshot.getPassword());
+
+            assertEquals(second, records.get(1).getOffset());
+            assertEquals(13L, records.get(1).getUser().getId());
+            assertNull(records.get(1).getUser().getPasswordResetToken());
+            assertNull(records.get(1).getUser().getPasswordRequestedAt());
+            assertTrue(eventLog.read(records.get(1).getNextOffset(), 10).isEmpty());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectOffsetInsideRecord() throws IOException {
+        try (EventLog eventLog = new EventLog(folder.getRoot().toPath(), 1024, 1)) {
+            eventLog.append(OutboxEventType.USER_CREATED, user(1L));
+
+            eventLog.read(3, 1);
+        }
+    }
+
+    @Test
+    public void shouldRollSegmentsAndRecoverOnReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long nextOffset;
+
+        try (EventLog eventLog = new EventLog(directory, 1024, 3)) {
+            for (long userId = 0; userId < 40; userId++) {
+                eventLog.append(OutboxEventType.PASSWORD_CHANGED, user(userId));
+            }
+            nextOffset = eventLog.getNextOffset();
+        }
+
+        assertTrue(nextOffset > 1024);
+
+        try (EventLog eventLog = new EventLog(directory, 1024, 3)) {
+            assertEquals(nextOffset, eventLog.getNextOffset());
+            eventLog.append(OutboxEventType.USER_CREATED, user(40L));
+
+            List<OutboxRecord> records = eventLog.read(0, 100);
+
+            assertEquals(41, records.size());
+            for (int i = 0; i < records.size(); i++) {
+                assertEquals(i, records.get(i).getUser().getId());
+            }
+        }
+    }
+
+    @Test
+    public void shouldDropTornRecordOnReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long second;
+
+        try (EventLog eventLog = new EventLog(directory, 1024, 1)) {
+            eventLog.append(OutboxEventType.USER_CREATED, user(1L));
+            second = eventLog.append(OutboxEventType.USER_CREATED, user(2L));
+            eventLog.append(OutboxEventType.USER_CREATED, user(3L));
+        }
+
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.log", 0)), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), second);
+        }
+
+        try (EventLog eventLog = new EventLog(directory, 1024, 1)) {
+            assertEquals(second, eventLog.getNextOffset());
+            assertEquals(second, eventLog.append(OutboxEventType.PASSWORD_RESET, user(4L)));
+        }
+
+        try (EventLog eventLog = new EventLog(directory, 1024, 1)) {
+            List<OutboxRecord> records = eventLog.read(0, 10);
+
+            assertEquals(2, records.size());
+            assertEquals(4L, records.get(1).getUser().getId());
+        }
+    }
+
+    @Test
+    public void shouldDeleteSegmentsBeforeOffsetAndKeepStartOnReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        long lastSegment;
+
+        try (EventLog eventLog = new EventLog(directory, 1024, 1)) {
+            while (eventLog.getNextOffset() < 2 * 1024) {
+                eventLog.append(OutboxEventType.PASSWORD_CHANGED, user(1L));
+            }
+            lastSegment = eventLog.getNextOffset() / 1024 * 1024;
+
+            assertEquals(0, eventLog.deleteSegments(lastSegment, 0));
+            assertEquals(1, eventLog.deleteSegments(1500, Long.MAX_VALUE));
+            assertEquals(1024, eventLog.getStartOffset());
+            assertEquals(1, eventLog.deleteSegments(eventLog.getNextOffset(), Long.MAX_VALUE));
+            assertEquals(0, eventLog.deleteSegments(eventLog.getNextOffset(), Long.MAX_VALUE));
+            assertEquals(lastSegment, eventLog.getStartOffset());
+        }
+
+        assertFalse(Files.exists(directory.resolve(String.format("%020d.log", 0))));
+
+        try (EventLog eventLog = new EventLog(directory, 1024, 1)) {
+            assertEquals(lastSegment, eventLog.getStartOffset());
+            assertEquals(1L, eventLog.read(lastSegment, 1).get(0).getUser().getId());
+
+            try {
+                eventLog.read(0, 1);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Deleted
+            }
+        }
+    }
+
+    private User user(long id) {
+        OutboxUser user = new OutboxUser();
+        user.setId(id);
+        user.setUsername("user" + id);
+        user.setEmail("user" + id + "@example.com");
+        return user;
+    }
+}
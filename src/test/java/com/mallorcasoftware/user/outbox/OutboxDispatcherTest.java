@@ -0,0 +1,274 @@
+package com.mallorcasoftware.user.outbox;
+
+import com.mallorcasoftware.user.BaseTest;
+import com.mallorcasoftware.user.event.PasswordResetEvent;
+import com.mallorcasoftware.user.event.RequestPasswordResetEvent;
+import com.mallorcasoftware.user.event.UserCreatedEvent;
+import com.mallorcasoftware.user.listener.UserListener;
+import com.mallorcasoftware.user.model.User;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class OutboxDispatcherTest extends BaseTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private UserListener userListener;
+
+    @Mock
+    private OutboxErrorHandler errorHandler;
+
+    private EventLog eventLog;
+
+    private Path checkpointFile;
+
+    private OutboxUser user;
+
+    @Override
+    public void initMocks() {
+        super.initMocks();
+
+        try {
+            eventLog = new EventLog(folder.getRoot().toPath().resolve("log"), 4096, 4);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        checkpointFile = folder.getRoot().toPath().resolve("checkpoint");
+
+        user = new OutboxUser();
+        user.setId(12L);
+        user.setUsername("testUsername");
+        user.setEmail("testMail");
+    }
+
+    @After
+    public void closeEventLog() {
+        eventLog.close();
+    }
+
+    @Test
+    public void shouldAppendEventsFromOutboxUserListener() {
+        OutboxUserListener outboxUserListener = new OutboxUserListener(eventLog);
+
+        outboxUserListener.onCreateUser(new UserCreatedEvent(user));
+        outboxUserListener.onPasswordReset(new PasswordResetEvent(user));
+
+        assertEquals(2, eventLog.read(0, 10).size());
+        assertEquals(OutboxEventType.USER_CREATED, eventLog.read(0, 1).get(0).getType());
+        assertEquals(12L, eventLog.read(0, 1).get(0).getUser().getId());
+    }
+
+    @Test
+    public void shouldDispatchPendingEventsAndCheckpoint() throws IOException {
+        eventLog.append(OutboxEventType.USER_CREATED, user);
+        eventLog.append(OutboxEventType.REQUEST_PASSWORD_RESET, user);
+
+        OutboxDispatcher dispatcher = new OutboxDispatcher(eventLog, checkpointFile);
+        dispatcher.addUserListener(userListener);
+
+        assertEquals(2, dispatcher.dispatchPending());
+        assertEquals(0, dispatcher.dispatchPending());
+        assertEquals(eventLog.getNextOffset(), dispatcher.getCheckpoint());
+
+        verify(userListener, times(1)).onCreateUser(any(UserCreatedEvent.class));
+        verify(userListener, times(1)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+
+        long checkpoint = dispatcher.getCheckpoint();
+        eventLog.append(OutboxEventType.PASSWORD_RESET, user);
+
+        OutboxDispatcher restartedDispatcher = new OutboxDispatcher(eventLog, checkpointFile);
+        restartedDispatcher.addUserListener(userListener);
+
+        assertEquals(checkpoint, restartedDispatcher.getCheckpoint());
+        assertEquals(1, restartedDispatcher.dispatchPending());
+        verify(userListener, times(1)).onCreateUser(any(UserCreatedEvent.class));
+        verify(userListener, times(1)).onPasswordReset(any(PasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldDeliverUserAsItWasWhenEventWasLogged() throws IOException {
+        Date passwordRequestedAt = new Date();
+        user.setPasswordResetToken("resetToken");
+        user.setPasswordRequestedAt(passwordRequestedAt);
+
+        eventLog.append(OutboxEventType.REQUEST_PASSWORD_RESET, user);
+
+        // The reset is completed before the request event is delivered
+        user.setPasswordResetToken(null);
+
+        OutboxDispatcher dispatcher = new OutboxDispatcher(eventLog, checkpointFile);
+        dispatcher.addUserListener(userListener);
+        dispatcher.dispatchPending();
+
+        ArgumentCaptor<RequestPasswordResetEvent> event = ArgumentCaptor.forClass(RequestPasswordResetEvent.class);
+        verify(userListener).onRequestPasswordReset(event.capture());
+
+        User deliveredUser = event.getValue().getUser();
+        assertEquals(12L, deliveredUser.getId());
+        assertEquals("testMail", deliveredUser.getEmail());
+        assertEquals("resetToken", deliveredUser.getPasswordResetToken());
+        assertEquals(passwordRequestedAt, deliveredUser.getPasswordRequestedAt());
+    }
+
+    @Test
+    public void shouldRedeliverEventAfterListenerFailure() throws IOException {
+        eventLog.append(OutboxEventType.USER_CREATED, user);
+        long failing = eventLog.append(OutboxEventType.PASSWORD_RESET, user);
+
+        doThrow(new IllegalStateException()).doNothing().when(userListener).onPasswordReset(any(PasswordResetEvent.class));
+
+        long[] now = {0};
+        OutboxDispatcher dispatcher = new OutboxDispatcher(eventLog, checkpointFile, () -> now[0]);
+        dispatcher.addUserListener(userListener);
+
+        try {
+            dispatcher.dispatchPending();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(failing, dispatcher.getCheckpoint());
+        }
+
+        now[0] = 999;
+        assertEquals(0, dispatcher.dispatchPending());
+        assertEquals(failing, dispatcher.getCheckpoint());
+
+        now[0] = 1000;
+        assertEquals(1, dispatcher.dispatchPending());
+        assertEquals(eventLog.getNextOffset(), dispatcher.getCheckpoint());
+        verify(userListener, times(1)).onCreateUser(any(UserCreatedEvent.class));
+        verify(userListener, times(2)).onPasswordReset(any(PasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldSkipRecordAfterMaxAttemptsAndReportDeadLetter() throws IOException {
+        long failing = eventLog.append(OutboxEventType.PASSWORD_RESET, user);
+        eventLog.append(OutboxEventType.USER_CREATED, user);
+
+        IllegalStateException failure = new IllegalStateException();
+        doThrow(failure).when(userListener).onPasswordReset(any(PasswordResetEvent.class));
+
+        OutboxDispatcher dispatcher = new OutboxDispatcher(eventLog, checkpointFile);
+        dispatcher.addUserListener(userListener);
+        dispatcher.setErrorHandler(errorHandler);
+        dispatcher.setMaxAttempts(2);
+        dispatcher.setRetryBackoff(0, 0);
+
+        try {
+            dispatcher.dispatchPending();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(failing, dispatcher.getCheckpoint());
+        }
+
+        assertEquals(1, dispatcher.dispatchPending());
+        assertEquals(eventLog.getNextOffset(), dispatcher.getCheckpoint());
+
+        ArgumentCaptor<OutboxRecord> record = ArgumentCaptor.forClass(OutboxRecord.class);
+        verify(errorHandler, times(1)).onDeadLetter(record.capture(), eq(failure));
+        assertEquals(failing, record.getValue().getOffset());
+        verify(userListener, times(2)).onPasswordReset(any(PasswordResetEvent.class));
+        verify(userListener, times(1)).onCreateUser(any(UserCreatedEvent.class));
+    }
+
+    @Test
+    public void shouldReportFailuresOfBackgroundDispatching() throws IOException, InterruptedException {
+        eventLog.append(OutboxEventType.USER_CREATED, user);
+
+        doThrow(new IllegalStateException()).when(userListener).onCreateUser(any(UserCreatedEvent.class));
+
+        OutboxDispatcher dispatcher = new OutboxDispatcher(eventLog, checkpointFile);
+        dispatcher.addUserListener(userListener);
+        dispatcher.setErrorHandler(errorHandler);
+        dispatcher.setMaxAttempts(3);
+        dispatcher.setRetryBackoff(10, 10);
+        dispatcher.start(10);
+
+        verify(errorHandler, timeout(5000).times(2)).onDispatchFailure(any(IllegalStateException.class));
+        verify(errorHandler, timeout(5000)).onDeadLetter(any(OutboxRecord.class), any(IllegalStateException.class));
+
+        dispatcher.close();
+        assertEquals(eventLog.getNextOffset(), dispatcher.getCheckpoint());
+    }
+
+    @Test
+    public void shouldReplayFromOffsetWithoutChangingCheckpoint() throws IOException {
+        eventLog.append(OutboxEventType.USER_CREATED, user);
+        long second = eventLog.append(OutboxEventType.REQUEST_PASSWORD_RESET, user);
+        eventLog.append(OutboxEventType.PASSWORD_RESET, user);
+
+        OutboxDispatcher dispatcher = new OutboxDispatcher(eventLog, checkpointFile);
+
+        assertEquals(2, dispatcher.replay(second, userListener));
+        assertEquals(0, dispatcher.getCheckpoint());
+
+        verify(userListener, never()).onCreateUser(any(UserCreatedEvent.class));
+        verify(userListener, times(1)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+        verify(userListener, times(1)).onPasswordReset(any(PasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldDeleteDispatchedSegmentsAfterRetention() throws IOException {
+        long[] now = {1000};
+        EventLog smallEventLog = new EventLog(folder.getRoot().toPath().resolve("small"), 1024, 1);
+
+        while (smallEventLog.getNextOffset() < 2 * 1024) {
+            smallEventLog.append(OutboxEventType.PASSWORD_CHANGED, user);
+        }
+
+        OutboxDispatcher dispatcher = new OutboxDispatcher(smallEventLog, checkpointFile, () -> now[0]);
+        dispatcher.addUserListener(userListener);
+        dispatcher.setRetentionMillis(60000);
+
+        now[0] = System.currentTimeMillis();
+        dispatcher.dispatchPending();
+        assertEquals(0, smallEventLog.getStartOffset());
+
+        now[0] += 60001;
+        dispatcher.dispatchPending();
+        assertEquals(2048, smallEventLog.getStartOffset());
+
+        smallEventLog.close();
+    }
+
+    @Test
+    public void shouldDoubleRetryBackoffUpToMaximum() throws IOException {
+        eventLog.append(OutboxEventType.REQUEST_PASSWORD_RESET, user);
+
+        doThrow(new IllegalStateException()).when(userListener).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+
+        long[] now = {0};
+        OutboxDispatcher dispatcher = new OutboxDispatcher(eventLog, checkpointFile, () -> now[0]);
+        dispatcher.addUserListener(userListener);
+        dispatcher.setRetryBackoff(1000, 3000);
+
+        long[] retries = {1000, 3000, 6000, 9000};
+        for (long retry : retries) {
+            try {
+                dispatcher.dispatchPending();
+                fail();
+            } catch (IllegalStateException e) {
+                // Retried after the backoff
+            }
+
+            now[0] = retry - 1;
+            assertEquals(0, dispatcher.dispatchPending());
+            now[0] = retry;
+        }
+
+        verify(userListener, times(4)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+    }
+}
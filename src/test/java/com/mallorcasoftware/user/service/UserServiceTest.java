@@ -13,9 +13,12 @@ import com.mallorcasoftware.user.listener.UserListener;
 import com.mallorcasoftware.user.model.CreateUser;
 import com.mallorcasoftware.user.model.User;
 import com.mallorcasoftware.user.service.encoder.PasswordEncoder;
+import com.mallorcasoftware.user.service.throttle.RequestThrottle;
 import com.mallorcasoftware.user.service.token.TokenGenerator;
 import com.mallorcasoftware.user.service.validator.UserValidator;
+import com.mallorcasoftware.user.service.writebehind.WriteBehindBuffer;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
@@ -25,6 +28,9 @@ import java.util.Date;
 import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class UserServiceTest extends BaseTest {
@@ -44,6 +50,9 @@ public class UserServiceTest extends BaseTest {
     @Mock
     private UserListener userListener;
 
+    @Mock
+    private RequestThrottle requestThrottle;
+
     private UserService<User> userService;
 
     @Override
@@ -195,6 +204,120 @@ public class UserServiceTest extends BaseTest {
         verify(userListener, times(1)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
     }
 
+    @Test
+    public void shouldNotifyOutboxListenerBeforeOtherListeners() throws UserNotFoundException {
+        String usernameOrEmail = "testMail";
+        User expectedUser = Mockito.mock(User.class);
+        UserListener outboxListener = Mockito.mock(UserListener.class);
+
+        when(expectedUser.getEmail()).thenReturn(usernameOrEmail);
+        when(userDao.findByUsernameOrEmail(usernameOrEmail, usernameOrEmail)).thenReturn(Optional.of(expectedUser));
+
+        userService.setOutboxListener(outboxListener);
+        userService.requestPasswordReset(usernameOrEmail);
+
+        InOrder inOrder = inOrder(userDao, outboxListener, userListener);
+        inOrder.verify(userDao).save(expectedUser);
+        inOrder.verify(outboxListener).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+        inOrder.verify(userListener).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldReusePendingTokenOnRequestPasswordResetWithinReuseWindow() throws UserNotFoundException {
+        String usernameOrEmail = "testMail";
+        User expectedUser = Mockito.mock(User.class);
+
+        when(expectedUser.getPasswordResetToken()).thenReturn("pendingToken");
+        when(expectedUser.getPasswordRequestedAt()).thenReturn(new Date());
+        when(userDao.findByUsernameOrEmail(usernameOrEmail, usernameOrEmail)).thenReturn(Optional.of(expectedUser));
+
+        userService.setPasswordResetReuseWindow(60);
+        userService.requestPasswordReset(usernameOrEmail);
+
+        verify(tokenGenerator, never()).generateToken(anyString());
+        verify(userDao, never()).save(expectedUser);
+        verify(userListener, times(1)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldCoalesceEventsOfReusedTokenOnRequestPasswordReset() throws UserNotFoundException {
+        String usernameOrEmail = "testMail";
+        User expectedUser = Mockito.mock(User.class);
+
+        when(expectedUser.getId()).thenReturn(12L);
+        when(expectedUser.getPasswordResetToken()).thenReturn("pendingToken");
+        when(expectedUser.getPasswordRequestedAt()).thenReturn(new Date());
+        when(userDao.findByUsernameOrEmail(usernameOrEmail, usernameOrEmail)).thenReturn(Optional.of(expectedUser));
+        when(requestThrottle.tryAcquire("12")).thenReturn(true, false, false);
+
+        userService.setPasswordResetReuseWindow(60);
+        userService.setPasswordResetResendThrottle(requestThrottle);
+        userService.requestPasswordReset(usernameOrEmail);
+        userService.requestPasswordReset(usernameOrEmail);
+        userService.requestPasswordReset(usernameOrEmail);
+
+        verify(requestThrottle, times(3)).tryAcquire("12");
+        verify(userDao, never()).save(expectedUser);
+        verify(userListener, times(1)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldGenerateNewTokenOnRequestPasswordResetIfPendingTokenExpiresSoon() throws UserNotFoundException {
+        String usernameOrEmail = "testMail";
+        String expectedToken = "expectedToken";
+        User expectedUser = Mockito.mock(User.class);
+
+        when(expectedUser.getEmail()).thenReturn(usernameOrEmail);
+        when(expectedUser.getPasswordResetToken()).thenReturn("pendingToken");
+        when(expectedUser.getPasswordRequestedAt()).thenReturn(new Date(System.currentTimeMillis() - 200 * 1000));
+        when(userDao.findByUsernameOrEmail(usernameOrEmail, usernameOrEmail)).thenReturn(Optional.of(expectedUser));
+        when(tokenGenerator.generateToken(usernameOrEmail)).thenReturn(expectedToken);
+
+        userService.setPasswordResetReuseWindow(300);
+        userService.requestPasswordReset(usernameOrEmail);
+
+        verify(expectedUser, times(1)).setPasswordResetToken(expectedToken);
+        verify(userDao, times(1)).save(expectedUser);
+        verify(userListener, times(1)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldGenerateNewTokenOnRequestPasswordResetAfterReuseWindow() throws UserNotFoundException {
+        String usernameOrEmail = "testMail";
+        String expectedToken = "expectedToken";
+        User expectedUser = Mockito.mock(User.class);
+
+        when(expectedUser.getEmail()).thenReturn(usernameOrEmail);
+        when(expectedUser.getPasswordResetToken()).thenReturn("pendingToken");
+        when(expectedUser.getPasswordRequestedAt()).thenReturn(new Date(System.currentTimeMillis() - 120 * 1000));
+        when(userDao.findByUsernameOrEmail(usernameOrEmail, usernameOrEmail)).thenReturn(Optional.of(expectedUser));
+        when(tokenGenerator.generateToken(usernameOrEmail)).thenReturn(expectedToken);
+
+        userService.setPasswordResetReuseWindow(60);
+        userService.requestPasswordReset(usernameOrEmail);
+
+        verify(expectedUser, times(1)).setPasswordResetToken(expectedToken);
+        verify(userDao, times(1)).save(expectedUser);
+        verify(userListener, times(1)).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+    }
+
+    @Test
+    public void shouldDropThrottledRequestPasswordReset() throws UserNotFoundException {
+        String usernameOrEmail = "testMail";
+        User expectedUser = Mockito.mock(User.class);
+
+        when(expectedUser.getId()).thenReturn(12L);
+        when(userDao.findByUsernameOrEmail(usernameOrEmail, usernameOrEmail)).thenReturn(Optional.of(expectedUser));
+        when(requestThrottle.tryAcquire("12")).thenReturn(false);
+
+        userService.setPasswordResetThrottle(requestThrottle);
+        userService.requestPasswordReset(usernameOrEmail);
+
+        verify(requestThrottle, times(1)).tryAcquire("12");
+        verify(userDao, never()).save(expectedUser);
+        verify(userListener, never()).onRequestPasswordReset(any(RequestPasswordResetEvent.class));
+    }
+
     @Test(expected = UserNotFoundException.class)
     public void shouldThrowUserNotFoundExceptionOnPasswordReset() throws UserNotFoundException, PasswordConfirmationNotMatchException, PasswordResetTokenNotValidException {
         String token = "testToken";
@@ -276,6 +399,7 @@ public class UserServiceTest extends BaseTest {
         userService.passwordReset(token, password, passwordConfirmation);
 
         verify(expectedUser, times(1)).setPassword(encodedPassword);
+        verify(expectedUser, times(1)).setPasswordResetToken(null);
         verify(userDao, times(1)).findByPasswordResetToken(token);
         verify(userDao, times(1)).save(expectedUser);
     }
@@ -326,6 +450,52 @@ public class UserServiceTest extends BaseTest {
         verify(userDao, times(1)).save(user);
     }
 
+    @Test
+    public void shouldNotSaveOnVerifyPasswordIfPasswordDoesNotMatch() {
+        User user = Mockito.mock(User.class);
+        String encodedPassword = "encodedPassword";
+
+        when(user.getPassword()).thenReturn(encodedPassword);
+        when(passwordEncoder.matches("password", encodedPassword)).thenReturn(false);
+
+        assertFalse(userService.verifyPassword(user, "password"));
+
+        verify(passwordEncoder, never()).encode(anyString());
+        verify(userDao, never()).save(user);
+    }
+
+    @Test
+    public void shouldNotRehashOnVerifyPasswordIfEncodingIsCurrent() {
+        User user = Mockito.mock(User.class);
+        String encodedPassword = "encodedPassword";
+
+        when(user.getPassword()).thenReturn(encodedPassword);
+        when(passwordEncoder.matches("password", encodedPassword)).thenReturn(true);
+        when(passwordEncoder.upgradeEncoding(encodedPassword)).thenReturn(false);
+
+        assertTrue(userService.verifyPassword(user, "password"));
+
+        verify(passwordEncoder, never()).encode(anyString());
+        verify(userDao, never()).save(user);
+    }
+
+    @Test
+    public void shouldRehashAndSaveOnVerifyPasswordIfEncodingIsOutdated() {
+        User user = Mockito.mock(User.class);
+        String encodedPassword = "encodedPassword";
+        String upgradedPassword = "upgradedPassword";
+
+        when(user.getPassword()).thenReturn(encodedPassword);
+        when(passwordEncoder.matches("password", encodedPassword)).thenReturn(true);
+        when(passwordEncoder.upgradeEncoding(encodedPassword)).thenReturn(true);
+        when(passwordEncoder.encode("password")).thenReturn(upgradedPassword);
+
+        assertTrue(userService.verifyPassword(user, "password"));
+
+        verify(user, times(1)).setPassword(upgradedPassword);
+        verify(userDao, times(1)).save(user);
+    }
+
     @Test
     public void shouldUpdateUser() {
         User expectedUser = Mockito.mock(User.class);
@@ -334,4 +504,122 @@ public class UserServiceTest extends BaseTest {
 
         verify(userDao, times(1)).save(expectedUser);
     }
+
+    @Test
+    public void shouldBufferUpdateUserWithWriteBehindBuffer() {
+        User expectedUser = Mockito.mock(User.class);
+        WriteBehindBuffer<User> writeBehindBuffer = new WriteBehindBuffer<User>(userDao, 100, 60000);
+
+        when(expectedUser.getId()).thenReturn(12L);
+
+        userService.setWriteBehindBuffer(writeBehindBuffer);
+        userService.updateUser(expectedUser);
+        userService.updateUser(expectedUser);
+
+        verify(userDao, never()).save(expectedUser);
+        assertEquals(expectedUser, userService.findUser(12L));
+        verify(userDao, never()).findById(12L);
+
+        writeBehindBuffer.close();
+
+        verify(userDao, times(1)).save(expectedUser);
+    }
+
+    @Test
+    public void shouldStartWriteBehindBufferWhenSet() {
+        WriteBehindBuffer<User> writeBehindBuffer = new WriteBehindBuffer<User>(userDao, 100, 60000);
+
+        userService.setWriteBehindBuffer(writeBehindBuffer);
+
+        assertTrue(writeBehindBuffer.isStarted());
+
+        writeBehindBuffer.close();
+
+        assertFalse(writeBehindBuffer.isStarted());
+    }
+
+    @Test
+    public void shouldReturnPendingUserOnFindUserByUsername() {
+        String expectedUsername = "testUsername";
+        User storedUser = Mockito.mock(User.class);
+        User pendingUser = Mockito.mock(User.class);
+        WriteBehindBuffer<User> writeBehindBuffer = new WriteBehindBuffer<User>(userDao, 100, 60000);
+
+        when(storedUser.getId()).thenReturn(12L);
+        when(pendingUser.getId()).thenReturn(12L);
+        when(pendingUser.getUsername()).thenReturn(expectedUsername);
+        when(userDao.findByUsername(expectedUsername)).thenReturn(Optional.of(storedUser));
+
+        userService.setWriteBehindBuffer(writeBehindBuffer);
+        userService.updateUser(pendingUser);
+
+        assertEquals(pendingUser, userService.findUser(expectedUsername));
+
+        writeBehindBuffer.close();
+    }
+
+    @Test
+    public void shouldDiscardBufferedUpdateOnDirectSave() throws PasswordConfirmationNotMatchException {
+        User user = Mockito.mock(User.class);
+        WriteBehindBuffer<User> writeBehindBuffer = new WriteBehindBuffer<User>(userDao, 100, 60000);
+
+        when(user.getId()).thenReturn(12L);
+
+        userService.setWriteBehindBuffer(writeBehindBuffer);
+        userService.updateUser(user);
+        userService.changePassword(user, "password", "password");
+        writeBehindBuffer.close();
+
+        verify(userDao, times(1)).save(user);
+    }
+
+    @Test
+    public void shouldFindUserByChangedUsernameAndEmailWithWriteBehindBuffer() {
+        User storedUser = Mockito.mock(User.class);
+        User renamedUser = Mockito.mock(User.class);
+        WriteBehindBuffer<User> writeBehindBuffer = new WriteBehindBuffer<User>(userDao, 100, 60000);
+
+        when(storedUser.getId()).thenReturn(12L);
+        when(storedUser.getUsername()).thenReturn("oldUsername");
+        when(storedUser.getEmail()).thenReturn("oldMail");
+        when(renamedUser.getId()).thenReturn(12L);
+        when(renamedUser.getUsername()).thenReturn("newUsername");
+        when(renamedUser.getEmail()).thenReturn("newMail");
+        when(userDao.findByUsername("oldUsername")).thenReturn(Optional.of(storedUser));
+        when(userDao.findByUsername("newUsername")).thenReturn(Optional.empty());
+        when(userDao.findByUsernameOrEmail("oldMail", "oldMail")).thenReturn(Optional.of(storedUser));
+        when(userDao.findByUsernameOrEmail("newMail", "newMail")).thenReturn(Optional.empty());
+
+        userService.setWriteBehindBuffer(writeBehindBuffer);
+        userService.updateUser(renamedUser);
+
+        assertEquals(renamedUser, userService.findUser("newUsername"));
+        assertEquals(renamedUser, userService.findUserByUsernameOrEmail("newMail"));
+        assertNull(userService.findUser("oldUsername"));
+        assertNull(userService.findUserByUsernameOrEmail("oldMail"));
+
+        writeBehindBuffer.close();
+    }
+
+    @Test(expected = UserAlreadyExistException.class)
+    public void shouldThrowUserAlreadyExistExceptionIfUsernameIsOnlyTakenByBufferedUpdate() throws UserAlreadyExistException {
+        User renamedUser = Mockito.mock(User.class);
+        User newUser = Mockito.mock(User.class);
+        WriteBehindBuffer<User> writeBehindBuffer = new WriteBehindBuffer<User>(userDao, 100, 60000);
+
+        when(renamedUser.getId()).thenReturn(12L);
+        when(renamedUser.getUsername()).thenReturn("newUsername");
+        when(newUser.getUsername()).thenReturn("newUsername");
+        when(userDao.findByUsername("newUsername")).thenReturn(Optional.empty());
+
+        userService.setWriteBehindBuffer(writeBehindBuffer);
+        userService.updateUser(renamedUser);
+
+        try {
+            userService.createUser(new CreateUser<>(newUser, "password"));
+        } finally {
+            verify(userDao, never()).save(newUser);
+            writeBehindBuffer.close();
+        }
+    }
 }
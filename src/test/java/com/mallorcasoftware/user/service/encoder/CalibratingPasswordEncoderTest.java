@@ -0,0 +1,77 @@
+package com.mallorcasoftware.user.service.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CalibratingPasswordEncoderTest {
+
+    @Test
+    public void shouldMatchEncodedPassword() {
+        CalibratingPasswordEncoder passwordEncoder = CalibratingPasswordEncoder.withIterations(1000);
+
+        String encodedPassword = passwordEncoder.encode("password");
+
+        assertTrue(passwordEncoder.matches("password", encodedPassword));
+        assertFalse(passwordEncoder.matches("password123", encodedPassword));
+    }
+
+    @Test
+    public void shouldUseRandomSalt() {
+        CalibratingPasswordEncoder passwordEncoder = CalibratingPasswordEncoder.withIterations(1000);
+
+        assertNotEquals(passwordEncoder.encode("password"), passwordEncoder.encode("password"));
+    }
+
+    @Test
+    public void shouldStoreIterationsInEncodedPassword() {
+        CalibratingPasswordEncoder passwordEncoder = CalibratingPasswordEncoder.withIterations(5000);
+
+        String encodedPassword = passwordEncoder.encode("password");
+
+        assertEquals(String.valueOf(passwordEncoder.getIterations()), encodedPassword.split("\\$")[0]);
+    }
+
+    @Test
+    public void shouldNotMatchMalformedPassword() {
+        CalibratingPasswordEncoder passwordEncoder = CalibratingPasswordEncoder.withIterations(1000);
+
+        assertFalse(passwordEncoder.matches("password", null));
+        assertFalse(passwordEncoder.matches("password", "plainPassword"));
+        assertFalse(passwordEncoder.matches("password", "abc$def$ghi"));
+    }
+
+    @Test
+    public void shouldUpgradeEncodingWithMuchLowerIterations() {
+        CalibratingPasswordEncoder weakEncoder = CalibratingPasswordEncoder.withIterations(1000);
+        CalibratingPasswordEncoder strongEncoder = CalibratingPasswordEncoder.withIterations(3000);
+
+        String weakPassword = weakEncoder.encode("password");
+        String strongPassword = strongEncoder.encode("password");
+
+        assertTrue(strongEncoder.matches("password", weakPassword));
+        assertTrue(strongEncoder.upgradeEncoding(weakPassword));
+        assertFalse(strongEncoder.upgradeEncoding(strongPassword));
+    }
+
+    @Test
+    public void shouldNotUpgradeEncodingWithSlightlyLowerIterations() {
+        CalibratingPasswordEncoder passwordEncoder = CalibratingPasswordEncoder.withIterations(100000);
+        int slightlyLower = passwordEncoder.getIterations() * 3 / 4;
+
+        assertFalse(passwordEncoder.upgradeEncoding(slightlyLower + "$c2FsdA==$aGFzaA=="));
+    }
+
+    @Test
+    public void shouldCalibrateAtLeastMinIterations() {
+        CalibratingPasswordEncoder passwordEncoder = new CalibratingPasswordEncoder(1, 5000);
+
+        String encodedPassword = passwordEncoder.encode("password");
+
+        assertTrue(passwordEncoder.getIterations() >= 5000);
+        assertTrue(passwordEncoder.matches("password", encodedPassword));
+    }
+}
@@ -0,0 +1,58 @@
+package com.mallorcasoftware.user.service.throttle;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketRequestThrottleTest {
+
+    private AtomicLong clock = new AtomicLong(1000);
+
+    @Test
+    public void shouldAllowBurstUpToCapacity() {
+        TokenBucketRequestThrottle throttle = new TokenBucketRequestThrottle(3, 1000, 16, clock::get);
+
+        assertTrue(throttle.tryAcquire("user"));
+        assertTrue(throttle.tryAcquire("user"));
+        assertTrue(throttle.tryAcquire("user"));
+        assertFalse(throttle.tryAcquire("user"));
+    }
+
+    @Test
+    public void shouldRefillTokensOverTime() {
+        TokenBucketRequestThrottle throttle = new TokenBucketRequestThrottle(2, 1000, 16, clock::get);
+
+        assertTrue(throttle.tryAcquire("user"));
+        assertTrue(throttle.tryAcquire("user"));
+        assertFalse(throttle.tryAcquire("user"));
+
+        clock.addAndGet(999);
+        assertFalse(throttle.tryAcquire("user"));
+
+        clock.addAndGet(1);
+        assertTrue(throttle.tryAcquire("user"));
+        assertFalse(throttle.tryAcquire("user"));
+
+        clock.addAndGet(60000);
+        assertTrue(throttle.tryAcquire("user"));
+        assertTrue(throttle.tryAcquire("user"));
+        assertFalse(throttle.tryAcquire("user"));
+    }
+
+    @Test
+    public void shouldKeepSeparateBucketsPerKey() {
+        TokenBucketRequestThrottle throttle = new TokenBucketRequestThrottle(1, 1000, 4096, clock::get);
+
+        assertTrue(throttle.tryAcquire("1"));
+        assertFalse(throttle.tryAcquire("1"));
+        assertTrue(throttle.tryAcquire("2"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidCapacity() {
+        new TokenBucketRequestThrottle(0, 1000);
+    }
+}
@@ -0,0 +1,240 @@
+package com.mallorcasoftware.user.service.writebehind;
+
+import com.mallorcasoftware.user.BaseTest;
+import com.mallorcasoftware.user.dao.UserDao;
+import com.mallorcasoftware.user.model.User;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class WriteBehindBufferTest extends BaseTest {
+
+    @Mock
+    private UserDao userDao;
+
+    @Mock
+    private WriteBehindErrorHandler<User> errorHandler;
+
+    @Test
+    public void shouldCoalesceSavesOfSameUser() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 100, 1000);
+        User user = mockUser(12L);
+        User updatedUser = mockUser(12L);
+
+        buffer.put(user);
+        buffer.put(updatedUser);
+
+        assertEquals(1, buffer.size());
+        assertEquals(updatedUser, buffer.get(12L));
+        verify(userDao, never()).save(any(User.class));
+
+        buffer.flush();
+
+        assertEquals(0, buffer.size());
+        assertNull(buffer.get(12L));
+        verify(userDao, never()).save(user);
+        verify(userDao, times(1)).save(updatedUser);
+    }
+
+    @Test
+    public void shouldFindPendingUsersByCurrentUsernameAndEmail() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 100, 1000);
+        User user = mockUser(12L);
+        User renamedUser = mockUser(12L);
+
+        when(user.getUsername()).thenReturn("oldUsername");
+        when(user.getEmail()).thenReturn("oldMail");
+        when(renamedUser.getUsername()).thenReturn("newUsername");
+        when(renamedUser.getEmail()).thenReturn("newMail");
+
+        buffer.put(user);
+        assertEquals(user, buffer.findByUsername("oldUsername"));
+
+        buffer.put(renamedUser);
+        assertEquals(renamedUser, buffer.findByUsername("newUsername"));
+        assertEquals(renamedUser, buffer.findByEmail("newMail"));
+        assertNull(buffer.findByUsername("oldUsername"));
+        assertNull(buffer.findByEmail("oldMail"));
+
+        buffer.flush();
+        assertNull(buffer.findByUsername("newUsername"));
+        assertNull(buffer.findByEmail("newMail"));
+    }
+
+    @Test
+    public void shouldFlushWhenBatchSizeIsReached() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 2, 1000);
+        User firstUser = mockUser(1L);
+        User secondUser = mockUser(2L);
+
+        buffer.put(firstUser);
+        verify(userDao, never()).save(any(User.class));
+
+        buffer.put(secondUser);
+        verify(userDao, times(1)).save(firstUser);
+        verify(userDao, times(1)).save(secondUser);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void shouldKeepUserPendingIfSaveFails() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 100, 1000);
+        User user = mockUser(12L);
+        IllegalStateException failure = new IllegalStateException();
+
+        when(userDao.save(user)).thenThrow(failure).thenReturn(user);
+
+        buffer.setErrorHandler(errorHandler);
+        buffer.put(user);
+
+        try {
+            buffer.flush();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(user, buffer.get(12L));
+        }
+
+        buffer.flush();
+
+        assertEquals(0, buffer.size());
+        verify(userDao, times(2)).save(user);
+        verify(errorHandler, times(1)).onSaveFailure(user, failure);
+        verify(errorHandler, never()).onDeadLetter(any(User.class), any(RuntimeException.class));
+    }
+
+    @Test
+    public void shouldDropUserAfterMaxAttemptsAndReportDeadLetter() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 1, 1000);
+        User user = mockUser(12L);
+        IllegalStateException failure = new IllegalStateException();
+
+        when(user.getUsername()).thenReturn("testUsername");
+        when(userDao.save(user)).thenThrow(failure);
+
+        buffer.setErrorHandler(errorHandler);
+        buffer.setMaxAttempts(2);
+        buffer.put(user);
+
+        assertEquals(user, buffer.findByUsername("testUsername"));
+        verify(errorHandler, times(1)).onSaveFailure(user, failure);
+
+        try {
+            buffer.flush();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(0, buffer.size());
+        }
+
+        assertNull(buffer.findByUsername("testUsername"));
+        verify(errorHandler, times(1)).onDeadLetter(user, failure);
+        verify(userDao, times(2)).save(user);
+    }
+
+    @Test
+    public void shouldNotFailPutIfFlushingOtherUserFails() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 2, 1000);
+        User failingUser = mockUser(1L);
+        User user = mockUser(2L);
+
+        when(userDao.save(failingUser)).thenThrow(new IllegalStateException());
+
+        buffer.setErrorHandler(errorHandler);
+        buffer.put(failingUser);
+        buffer.put(user);
+
+        verify(errorHandler, times(1)).onSaveFailure(eq(failingUser), any(IllegalStateException.class));
+        verify(userDao, times(1)).save(failingUser);
+        verify(userDao, times(1)).save(user);
+        assertEquals(1, buffer.size());
+        assertEquals(failingUser, buffer.get(1L));
+        assertNull(buffer.get(2L));
+    }
+
+    @Test
+    public void shouldSaveDirectlyIfBufferIsFull() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 1, 1000);
+        User failingUser = mockUser(1L);
+        User user = mockUser(2L);
+
+        when(userDao.save(failingUser)).thenThrow(new IllegalStateException());
+
+        buffer.setErrorHandler(errorHandler);
+        buffer.setMaxPendingSize(1);
+        buffer.put(failingUser);
+        buffer.put(user);
+
+        verify(userDao, times(1)).save(user);
+        assertEquals(1, buffer.size());
+        assertNull(buffer.get(2L));
+    }
+
+    @Test
+    public void shouldDiscardPendingUser() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 100, 1000);
+        User user = mockUser(12L);
+
+        buffer.put(user);
+        buffer.discard(12L);
+        buffer.flush();
+
+        verify(userDao, never()).save(user);
+    }
+
+    @Test(timeout = 10000)
+    public void shouldOnlyWaitInDiscardForSaveOfSameUser() throws InterruptedException {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 1, 60000);
+        User user = mockUser(1L);
+        CountDownLatch saving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        doAnswer(invocation -> {
+            saving.countDown();
+            release.await();
+            return user;
+        }).when(userDao).save(user);
+
+        buffer.start();
+        buffer.put(user);
+        saving.await();
+
+        buffer.discard(2L);
+
+        Thread discard = new Thread(() -> buffer.discard(1L));
+        discard.start();
+        discard.join(200);
+        assertTrue(discard.isAlive());
+
+        release.countDown();
+        discard.join();
+        buffer.close();
+
+        verify(userDao, times(1)).save(user);
+    }
+
+    @Test
+    public void shouldFlushOnClose() {
+        WriteBehindBuffer<User> buffer = new WriteBehindBuffer<User>(userDao, 100, 60000);
+        User user = mockUser(12L);
+
+        buffer.start();
+        buffer.put(user);
+        buffer.close();
+
+        verify(userDao, times(1)).save(user);
+        assertEquals(0, buffer.size());
+    }
+
+    private User mockUser(long id) {
+        User user = Mockito.mock(User.class);
+        when(user.getId()).thenReturn(id);
+        return user;
+    }
+}